@@ -4,32 +4,127 @@
 //
 // This file implements the SQLiteOpenHelper subclass for the location capture
 // module.  It defines our database structure, along with helper methods for
-// the location store and upload queue.
+// the location store, upload queue and visits.
 //
 // ##########################################################################
 
 package com.globalid.locationcapture;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import android.content.Context;
 import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Base64;
 
 // ##########################################################################
+//
+// The location store is split into time-based partitions, with one table per
+// day named "location_store_<day>", where <day> is the number of days since
+// the Unix epoch.  The "location_partitions" table acts as a catalog of the
+// partitions, recording the time range and the range of record IDs held in
+// each one.
+//
+// Record IDs are allocated across all partitions, so the anchor values used to
+// retrieve locations keep working no matter which partition a location ends up
+// in.  New locations always go into a small, recent table, deleting old
+// locations is mostly a matter of dropping whole partitions, and retrieval
+// only needs to look at the partitions which can hold matching records.
+//
+// The database uses write-ahead logging.  Reads go through a small pool of
+// read-only connections, so that they never block, or are blocked by, the
+// connection used to add locations.  Each query sees the database as of the
+// moment it started; retrieval, which spans several queries, limits itself to
+// the record IDs which existed when it started (see
+// retrieveFromLocationStore()).  Writes are serialised by our own write lock
+// rather than by synchronizing on this object, so that reads never wait on
+// the SQLiteOpenHelper's monitor while a write is in progress.
 
 public class LocationCaptureDB extends SQLiteOpenHelper {
 
     // Our database version:
 
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 3;
 
     // The name for our database:
 
     private static final String DATABASE_NAME = "LocationCapture";
 
+    // The length of time covered by each location store partition, in
+    // seconds:
+
+    private static final long PARTITION_SIZE = 86400;
+
+    // Once this many pages are free in the database file, we return them to
+    // the file system, VACUUM_PAGES pages at a time:
+
+    private static final long VACUUM_THRESHOLD = 256;
+    private static final long VACUUM_PAGES     = 1024;
+
+    // The maximum number of read-only connections to keep open:
+
+    private static final int READ_POOL_SIZE = 2;
+
+    // The default thresholds for detecting visits:
+
+    private static final int DEFAULT_VISIT_RADIUS     = 100;
+    private static final int DEFAULT_VISIT_DWELL_TIME = 300;
+
+    // When the database is opened, the latest visit is carried on with if it
+    // ended recently enough for the visit detector to extend it:
+
+    private static final long VISIT_RESUME_TIME = VisitDetector.MAX_GAP;
+
+    // The detector which turns stored locations into visits:
+
+    private VisitDetector visit_detector;
+
+    // Set when the visit detector has to be reloaded from the visits table
+    // before the next location is added to it.  This is guarded by
+    // 'write_lock':
+
+    private boolean reload_visit;
+
+    // The lock held while writing to the database, and set once prepare()
+    // has created or upgraded the database:
+
+    private ReentrantLock    write_lock;
+    private volatile boolean prepared;
+
+    // The partition new locations are currently being added to, and the next
+    // record ID to use.  These are loaded from the partition catalog as
+    // required, and are guarded by 'write_lock':
+
+    private String hot_partition;
+    private long   hot_partition_start;
+    private long   next_location_id;
+
+    // Our pool of read-only connections:
+
+    private String                             database_path;
+    private ArrayBlockingQueue<SQLiteDatabase> idle_readers;
+    private int                                num_readers;
+    private volatile boolean                   closed;
+
+    // Our contention counters:
+
+    private AtomicInteger active_writes;
+    private AtomicLong    num_reads;
+    private AtomicLong    num_writes;
+    private AtomicLong    overlapping_reads;
+    private AtomicLong    reader_waits;
+
     // ======================================================================
     //
     // LocationCaptureDB(context)
@@ -38,6 +133,126 @@ public class LocationCaptureDB extends SQLiteOpenHelper {
 
     public LocationCaptureDB(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.visit_detector = new VisitDetector(DEFAULT_VISIT_RADIUS,
+                                                DEFAULT_VISIT_DWELL_TIME);
+        this.reload_visit     = true;
+        this.hot_partition    = null;
+        this.next_location_id = -1;
+
+        this.write_lock = new ReentrantLock();
+        this.prepared   = false;
+
+        this.database_path = context.getDatabasePath(DATABASE_NAME).getPath();
+        this.idle_readers  = new ArrayBlockingQueue<SQLiteDatabase>(
+                                                        READ_POOL_SIZE);
+        this.num_readers   = 0;
+        this.closed        = false;
+
+        this.active_writes     = new AtomicInteger(0);
+        this.num_reads         = new AtomicLong(0);
+        this.num_writes        = new AtomicLong(0);
+        this.overlapping_reads = new AtomicLong(0);
+        this.reader_waits      = new AtomicLong(0);
+    }
+
+    // ======================================================================
+    //
+    // prepare()
+    //
+    //     Open the database, creating or upgrading it as required, and load
+    //     the partition catalog so that the first real request doesn't have
+    //     to wait for any of this.  If the latest visit ended recently, our
+    //     visit detector carries on with it.
+    //
+    //     This can take some time, so it should be called from a background
+    //     thread.  Note that the database connections are kept open until
+    //     close() is called.
+    //
+    //     If prepare() hasn't been called by the time of the first read or
+    //     write, that read or write calls it first.  Calling prepare() again
+    //     does nothing, so that it can't throw away a visit in progress.
+
+    public void prepare() {
+
+        this.write_lock.lock();
+        try {
+            if (this.prepared) {
+                return;
+            }
+
+            SQLiteDatabase db = this.getWritableDatabase();
+            this.nextLocationId(db);
+            this.resumeLatestVisit(db);
+            this.prepared = true;
+        } finally {
+            this.write_lock.unlock();
+        }
+
+        this.releaseReader(this.acquireReader());
+    }
+
+    // ======================================================================
+    //
+    // close()
+    //
+    //     Close our database, along with all our read-only connections.  Any
+    //     read-only connection still in use is closed as soon as it is
+    //     released.  We wait for any write in progress to finish first.
+    //
+    //     Once closed, any further reads or writes throw an
+    //     IllegalStateException rather than reopening the database.
+
+    @Override
+    public void close() {
+
+        this.write_lock.lock();
+        try {
+            synchronized (this.idle_readers) {
+                this.closed = true;
+
+                SQLiteDatabase reader;
+                while ((reader = this.idle_readers.poll()) != null) {
+                    reader.close();
+                }
+            }
+
+            super.close();
+        } finally {
+            this.write_lock.unlock();
+        }
+    }
+
+    // ======================================================================
+    //
+    // getStats()
+    //
+    //     Return our contention counters, so that we can see how often reads
+    //     and writes overlap.
+
+    public LocationCaptureDBStats getStats() {
+
+        return new LocationCaptureDBStats(this.num_reads.get(),
+                                          this.num_writes.get(),
+                                          this.overlapping_reads.get(),
+                                          this.reader_waits.get());
+    }
+
+    // ======================================================================
+    //
+    // onConfigure(db)
+    //
+    //     Configure our database connection before the schema is created.
+    //
+    //     We use incremental auto-vacuuming, so that the space freed when
+    //     old partitions are dropped can be returned to the file system
+    //     without having to rewrite the whole database file.  We also turn
+    //     on write-ahead logging, so that readers and the writer don't block
+    //     each other.
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        execPragma(db, "PRAGMA auto_vacuum = INCREMENTAL");
+        db.enableWriteAheadLogging();
     }
 
     // ======================================================================
@@ -45,19 +260,17 @@ public class LocationCaptureDB extends SQLiteOpenHelper {
     // onCreate(db)
     //
     //     Create our database schema.
+    //
+    //     Note that the location store partitions are created as required,
+    //     as locations are added to the store.
 
     public void onCreate(SQLiteDatabase db) {
-        db.execSQL("CREATE TABLE location_store(" +
-                   "  id        INTEGER PRIMARY KEY," +
-                   "  timestamp INTEGER," +
-                   "  latitude  DOUBLE," +
-                   "  longitude DOUBLE," +
-                   "  accuracy  INTEGER," +
-                   "  heading   DOUBLE," +
-                   "  speed     DOUBLE)");
-
-        db.execSQL("CREATE INDEX location_store_index " +
-                   "ON location_store(timestamp)");
+        db.execSQL("CREATE TABLE location_partitions(" +
+                   "  name      TEXT PRIMARY KEY," +
+                   "  start     INTEGER," +
+                   "  end       INTEGER," +
+                   "  min_id    INTEGER," +
+                   "  max_id    INTEGER)");
 
         db.execSQL("CREATE TABLE upload_queue(" +
                    "  id        INTEGER PRIMARY KEY," +
@@ -70,6 +283,17 @@ public class LocationCaptureDB extends SQLiteOpenHelper {
 
         db.execSQL("CREATE INDEX upload_queue_index " +
                    "ON upload_queue(timestamp)");
+
+        db.execSQL("CREATE TABLE visits(" +
+                   "  id            INTEGER PRIMARY KEY," +
+                   "  arrival       INTEGER," +
+                   "  departure     INTEGER," +
+                   "  latitude      DOUBLE," +
+                   "  longitude     DOUBLE," +
+                   "  num_locations INTEGER)");
+
+        db.execSQL("CREATE INDEX visits_index " +
+                   "ON visits(arrival)");
     }
 
     // ======================================================================
@@ -83,12 +307,53 @@ public class LocationCaptureDB extends SQLiteOpenHelper {
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 
+        List<String> partitions = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master " +
+                                    "WHERE type = 'table' " +
+                                    "AND name LIKE 'location\\_store\\_%' " +
+                                    "ESCAPE '\\'", null);
+        try {
+            while (cursor.moveToNext()) {
+                partitions.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (String partition : partitions) {
+            db.execSQL("DROP TABLE IF EXISTS " + partition);
+        }
+
         db.execSQL("DROP TABLE IF EXISTS location_store");
+        db.execSQL("DROP TABLE IF EXISTS location_partitions");
         db.execSQL("DROP TABLE IF EXISTS upload_queue");
+        db.execSQL("DROP TABLE IF EXISTS visits");
+
+        this.hot_partition    = null;
+        this.next_location_id = -1;
 
         this.onCreate(db);
     }
 
+    // ======================================================================
+    //
+    // onOpen(db)
+    //
+    //     Finish opening our database.
+    //
+    //     A database created before we switched to incremental auto-vacuuming
+    //     needs a full VACUUM before the new setting takes effect.  We do
+    //     this once, here, as VACUUM can't be run inside the transaction used
+    //     by onCreate() and onUpgrade().
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != 2) {
+            execPragma(db, "PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+        }
+    }
+
     // ======================================================================
     // ==                                                                  ==
     // ==            L O C A T I O N   S T O R E   H E L P E R S           ==
@@ -97,22 +362,81 @@ public class LocationCaptureDB extends SQLiteOpenHelper {
     //
     // addToLocationStore(location)
     //
-    //     Add a CapturedLocation to the location store table.
+    //     Add a CapturedLocation to the location store.
+    //
+    //     The location is added to the partition covering its timestamp,
+    //     creating the partition if necessary.  The location is also passed
+    //     on to our visit detector, and any new or updated visit is written
+    //     to the visits table.
+    //
+    //     If the transaction doesn't commit, we forget the cached hot
+    //     partition and record ID, as they may refer to a partition or ID
+    //     which was rolled back.  They are reloaded from the catalog on the
+    //     next insert.  The same goes for the visit detector, which may have
+    //     taken in the location, or been given the ID of a visit which was
+    //     never stored; it is reset, and reloaded from the visits table on
+    //     the next insert.
 
     public void addToLocationStore(CapturedLocation location) {
 
-        SQLiteDatabase db = this.getWritableDatabase();
+        boolean committed = false;
+        long    id        = -1;
 
-        ContentValues values = new ContentValues();
-        values.put("timestamp", location.getTimestamp());
-        values.put("latitude",  location.getLatitude());
-        values.put("longitude", location.getLongitude());
-        values.put("accuracy",  location.getAccuracy());
-        values.put("heading",   location.getHeading());
-        values.put("speed",     location.getSpeed());
+        if (!this.prepared) {
+            this.prepare();
+        }
+
+        this.beginWrite();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                String partition = this.partitionFor(db,
+                                                     location.getTimestamp());
+                id = this.nextLocationId(db);
+
+                ContentValues values = new ContentValues();
+                values.put("id",        id);
+                values.put("timestamp", location.getTimestamp());
+                values.put("latitude",  location.getLatitude());
+                values.put("longitude", location.getLongitude());
+                values.put("accuracy",  location.getAccuracy());
+                values.put("heading",   location.getHeading());
+                values.put("speed",     location.getSpeed());
+
+                db.insertOrThrow(partition, null, values);
 
-        db.insert("location_store", null, values);
-        db.close();
+                db.execSQL("UPDATE location_partitions SET " +
+                           "min_id = coalesce(min(min_id, ?), ?), " +
+                           "max_id = coalesce(max(max_id, ?), ?) " +
+                           "WHERE name = ?",
+                           new Object[] { id, id, id, id, partition });
+
+                if (this.reload_visit) {
+                    this.resumeLatestVisit(db);
+                }
+
+                Visit visit = this.visit_detector.addLocation(location);
+                if (visit != null) {
+                    this.storeVisit(db, visit);
+                }
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            committed = true;
+        } finally {
+            if (committed) {
+                this.next_location_id = id + 1;
+            } else {
+                this.hot_partition    = null;
+                this.next_location_id = -1;
+                this.visit_detector.reset();
+                this.reload_visit     = true;
+            }
+            this.endWrite();
+        }
     }
 
     // ======================================================================
@@ -120,7 +444,13 @@ public class LocationCaptureDB extends SQLiteOpenHelper {
     // deleteOldLocationsFromLocationStore(num_days)
     //
     //     Delete any locations in the location store older than the given
-    //     number of days.
+    //     number of days.  Visits which ended before the cutoff are deleted
+    //     as well.
+    //
+    //     Partitions which lie entirely before the cutoff are simply dropped;
+    //     only the partition straddling the cutoff needs to have individual
+    //     locations deleted.  Afterwards, we return any free space to the file
+    //     system if enough has built up.
 
     public void deleteOldLocationsFromLocationStore(int num_days) {
 
@@ -128,10 +458,66 @@ public class LocationCaptureDB extends SQLiteOpenHelper {
         long cur_secs = (long)now.getTime()/1000;
         long cutoff   = cur_secs - (num_days * 86400);
 
-        SQLiteDatabase db = this.getWritableDatabase();
-        db.delete("location_store", "timestamp < ?",
-                  new String[] { String.valueOf(cutoff) });
-        db.close();
+        if (!this.prepared) {
+            this.prepare();
+        }
+
+        this.beginWrite();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                List<String> expired    = new ArrayList<String>();
+                List<String> straddling = new ArrayList<String>();
+
+                Cursor cursor = db.rawQuery("SELECT name, end " +
+                                            "FROM location_partitions " +
+                                            "WHERE start < ?",
+                                            new String[] {
+                                                String.valueOf(cutoff) });
+                try {
+                    while (cursor.moveToNext()) {
+                        if (cursor.getLong(1) <= cutoff) {
+                            expired.add(cursor.getString(0));
+                        } else {
+                            straddling.add(cursor.getString(0));
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                for (String partition : expired) {
+                    db.execSQL("DROP TABLE IF EXISTS " + partition);
+                    db.delete("location_partitions", "name = ?",
+                              new String[] { partition });
+                    if (partition.equals(this.hot_partition)) {
+                        this.hot_partition = null;
+                    }
+                }
+
+                for (String partition : straddling) {
+                    db.delete(partition, "timestamp < ?",
+                              new String[] { String.valueOf(cutoff) });
+                }
+
+                db.delete("visits", "departure < ?",
+                          new String[] { String.valueOf(cutoff) });
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            long free_pages = DatabaseUtils.longForQuery(db,
+                                            "PRAGMA freelist_count", null);
+            if (free_pages >= VACUUM_THRESHOLD) {
+                execPragma(db, "PRAGMA incremental_vacuum(" +
+                               VACUUM_PAGES + ")");
+            }
+        } finally {
+            this.endWrite();
+        }
     }
 
     // ======================================================================
@@ -144,11 +530,120 @@ public class LocationCaptureDB extends SQLiteOpenHelper {
     //     Upon completion, we return a LocationCaptureDBRetrieveResult object
     //     containing the list of retrieved locations and the next anchor value
     //     to use.
+    //
+    //     A limit of zero returns no locations, while any negative limit
+    //     retrieves all the remaining locations.
+    //
+    //     Only the partitions holding records after the anchor are searched.
+    //     These are visited in order of their lowest record ID, and we stop as
+    //     soon as no remaining partition can hold a record that would make it
+    //     into the results.
+    //
+    //     We don't use a transaction for this, as older versions of SQLite
+    //     can't start one on a read-only connection.  Instead, we note the
+    //     highest record ID in the catalog before we start, and ignore any
+    //     record with a higher ID.  Record IDs only ever increase, so this
+    //     gives us the location store as it was at that moment, even while
+    //     new locations are being added.  A partition which is dropped while
+    //     we are reading is simply skipped, as its locations have expired.
 
     public LocationCaptureDBRetrieveResult retrieveFromLocationStore(
                                                     String anchor,
                                                     int limit) {
-        return null; // More to come...
+
+        long rec_id = decodeAnchor(anchor);
+
+        if (limit == 0) {
+            return new LocationCaptureDBRetrieveResult(
+                                new ArrayList<CapturedLocation>(), "");
+        } else if (limit < 0) {
+            limit = -1;
+        }
+
+        List<String>           partitions = new ArrayList<String>();
+        List<Long>             min_ids    = new ArrayList<Long>();
+        List<CapturedLocation> locations  = new ArrayList<CapturedLocation>();
+
+        SQLiteDatabase db = this.acquireReader();
+        try {
+            long max_id = DatabaseUtils.longForQuery(db,
+                            "SELECT coalesce(max(max_id), 0) " +
+                            "FROM location_partitions", null);
+
+            Cursor cursor = db.rawQuery("SELECT name, min_id " +
+                                        "FROM location_partitions " +
+                                        "WHERE max_id > ? AND min_id <= ? " +
+                                        "ORDER BY min_id",
+                                        new String[] {
+                                            String.valueOf(rec_id),
+                                            String.valueOf(max_id) });
+            try {
+                while (cursor.moveToNext()) {
+                    partitions.add(cursor.getString(0));
+                    min_ids.add(cursor.getLong(1));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            for (int i=0; i < partitions.size(); i++) {
+                if ((limit != -1) && (locations.size() >= limit)
+                        && (min_ids.get(i) > locations.get(limit-1).getId())) {
+                    break;
+                }
+
+                List<CapturedLocation> found =
+                                    new ArrayList<CapturedLocation>();
+
+                try {
+                    cursor = db.query(partitions.get(i),
+                                      new String[] {"id", "timestamp",
+                                                    "latitude", "longitude",
+                                                    "accuracy", "heading",
+                                                    "speed"},
+                                      "id > ? AND id <= ?",
+                                      new String[] { String.valueOf(rec_id),
+                                                     String.valueOf(max_id) },
+                                      null, null, "id",
+                                      (limit != -1) ? String.valueOf(limit)
+                                                    : null);
+                    try {
+                        while (cursor.moveToNext()) {
+                            CapturedLocation location = new CapturedLocation(
+                                                        cursor.getLong(1),
+                                                        cursor.getDouble(2),
+                                                        cursor.getDouble(3),
+                                                        cursor.getInt(4),
+                                                        cursor.getDouble(5),
+                                                        cursor.getDouble(6));
+                            location.setId(cursor.getInt(0));
+                            found.add(location);
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                } catch (SQLiteException e) {
+                    if (partitionExists(db, partitions.get(i))) {
+                        throw e;
+                    }
+                    continue;
+                }
+
+                locations = mergeLocations(locations, found, limit);
+            }
+        } finally {
+            this.releaseReader(db);
+        }
+
+        String next_anchor;
+        if (locations.size() > 0) {
+            next_anchor = encodeAnchor(
+                            locations.get(locations.size()-1).getId());
+        } else {
+            next_anchor = "";
+        }
+
+        return new LocationCaptureDBRetrieveResult(locations, next_anchor);
     }
 
     // ======================================================================
@@ -160,7 +655,456 @@ public class LocationCaptureDB extends SQLiteOpenHelper {
 
     public String getLatestAnchorFromLocationStore() {
 
-        return null; // More to come...
+        SQLiteDatabase db = this.acquireReader();
+        long max_id;
+        try {
+            max_id = DatabaseUtils.longForQuery(db,
+                            "SELECT coalesce(max(max_id), 0) " +
+                            "FROM location_partitions", null);
+        } finally {
+            this.releaseReader(db);
+        }
+
+        if (max_id > 0) {
+            return encodeAnchor(max_id);
+        } else {
+            return "";
+        }
+    }
+
+    // ======================================================================
+    //
+    // partitionFor(db, timestamp)
+    //
+    //     Return the name of the location store partition to hold a location
+    //     with the given timestamp, creating the partition if it doesn't
+    //     already exist.
+
+    private String partitionFor(SQLiteDatabase db, long timestamp) {
+
+        long start = timestamp - (timestamp % PARTITION_SIZE);
+
+        if ((this.hot_partition != null)
+                && (start == this.hot_partition_start)) {
+            return this.hot_partition;
+        }
+
+        String partition = "location_store_" + (start / PARTITION_SIZE);
+
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + partition + "(" +
+                   "  id        INTEGER PRIMARY KEY," +
+                   "  timestamp INTEGER," +
+                   "  latitude  DOUBLE," +
+                   "  longitude DOUBLE," +
+                   "  accuracy  INTEGER," +
+                   "  heading   DOUBLE," +
+                   "  speed     DOUBLE)");
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + partition + "_index " +
+                   "ON " + partition + "(timestamp)");
+
+        db.execSQL("INSERT OR IGNORE INTO location_partitions" +
+                   "(name, start, end) VALUES (?, ?, ?)",
+                   new Object[] { partition, start, start + PARTITION_SIZE });
+
+        // Only remember the partition for today's locations; a location for
+        // an earlier day is a one-off, and shouldn't displace the hot
+        // partition.
+
+        Date now      = new Date();
+        long cur_secs = (long)now.getTime()/1000;
+
+        if (start == cur_secs - (cur_secs % PARTITION_SIZE)) {
+            this.hot_partition       = partition;
+            this.hot_partition_start = start;
+        }
+
+        return partition;
+    }
+
+    // ======================================================================
+    //
+    // mergeLocations(locations, found, limit)
+    //
+    //     Merge two lists of locations, each already in record ID order, and
+    //     return the first 'limit' locations of the result, or all of them if
+    //     'limit' is -1.
+    //
+    //     Partitions usually hold disjoint ranges of record IDs, so in the
+    //     common case 'found' simply follows on from 'locations' and is
+    //     appended to it.  Only a partition holding back-dated locations
+    //     needs a real merge.
+
+    private static List<CapturedLocation> mergeLocations(
+                                            List<CapturedLocation> locations,
+                                            List<CapturedLocation> found,
+                                            int limit) {
+
+        List<CapturedLocation> merged;
+
+        if (found.isEmpty()) {
+            return locations;
+        } else if (locations.isEmpty()
+                || (locations.get(locations.size()-1).getId()
+                                            < found.get(0).getId())) {
+            locations.addAll(found);
+            merged = locations;
+        } else {
+            merged = new ArrayList<CapturedLocation>(
+                                        locations.size() + found.size());
+            int i = 0;
+            int j = 0;
+            while ((i < locations.size()) || (j < found.size())) {
+                if ((j == found.size())
+                        || ((i < locations.size())
+                            && (locations.get(i).getId()
+                                            < found.get(j).getId()))) {
+                    merged.add(locations.get(i++));
+                } else {
+                    merged.add(found.get(j++));
+                }
+            }
+        }
+
+        if ((limit != -1) && (merged.size() > limit)) {
+            merged = new ArrayList<CapturedLocation>(merged.subList(0, limit));
+        }
+
+        return merged;
+    }
+
+    // ======================================================================
+    //
+    // partitionExists(db, partition)
+    //
+    //     Return |true| if the given partition is still listed in the
+    //     partition catalog.
+
+    private static boolean partitionExists(SQLiteDatabase db,
+                                           String partition) {
+
+        return DatabaseUtils.longForQuery(db,
+                        "SELECT count(*) FROM location_partitions " +
+                        "WHERE name = ?", new String[] { partition }) > 0;
+    }
+
+    // ======================================================================
+    //
+    // nextLocationId(db)
+    //
+    //     Return the record ID to use for the next location added to the
+    //     location store.
+
+    private long nextLocationId(SQLiteDatabase db) {
+
+        if (this.next_location_id == -1) {
+            this.next_location_id = DatabaseUtils.longForQuery(db,
+                                        "SELECT coalesce(max(max_id), 0) + 1 " +
+                                        "FROM location_partitions", null);
+        }
+
+        return this.next_location_id;
+    }
+
+    // ======================================================================
+    //
+    // acquireReader()
+    //
+    //     Return a read-only connection from our pool, opening a new one if
+    //     the pool isn't yet full.  If every connection is in use, we wait
+    //     for one to be released.
+    //
+    //     The returned connection must be passed to releaseReader() once the
+    //     caller has finished with it.
+    //
+    //     Note that the caller mustn't call beginTransaction() on the
+    //     returned connection: that always starts an exclusive transaction,
+    //     which older versions of SQLite refuse on a read-only connection.
+
+    private SQLiteDatabase acquireReader() {
+
+        if (!this.prepared) {
+            this.prepare();
+        }
+
+        // Note that we sample 'active_writes' without taking any lock the
+        // writer holds, so that this counts reads which really do run
+        // alongside a write.
+
+        synchronized (this.idle_readers) {
+            if (this.closed) {
+                throw new IllegalStateException("Database has been closed");
+            }
+
+            this.num_reads.incrementAndGet();
+            if (this.active_writes.get() > 0) {
+                this.overlapping_reads.incrementAndGet();
+            }
+
+            SQLiteDatabase reader = this.idle_readers.poll();
+            if (reader != null) {
+                return reader;
+            }
+
+            // Only count the new connection once it has actually opened, so
+            // that a failed open doesn't use up a place in the pool.
+
+            if (this.num_readers < READ_POOL_SIZE) {
+                reader = SQLiteDatabase.openDatabase(this.database_path, null,
+                                                SQLiteDatabase.OPEN_READONLY);
+                this.num_readers++;
+                return reader;
+            }
+        }
+
+        // Every connection is in use, so wait for one to be released.  We
+        // check periodically whether the database has been closed, as the
+        // connections in use won't be returned to the pool if it has.
+
+        this.reader_waits.incrementAndGet();
+        try {
+            while (true) {
+                SQLiteDatabase reader = this.idle_readers.poll(1,
+                                                            TimeUnit.SECONDS);
+                if (reader != null) {
+                    return reader;
+                } else if (this.closed) {
+                    throw new IllegalStateException(
+                                            "Database has been closed");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(
+                        "Interrupted while waiting for a database connection");
+        }
+    }
+
+    // ======================================================================
+    //
+    // releaseReader(reader)
+    //
+    //     Return a read-only connection to our pool.  If the database has
+    //     been closed in the meantime, the connection is closed instead.
+
+    private void releaseReader(SQLiteDatabase reader) {
+
+        synchronized (this.idle_readers) {
+            if (this.closed) {
+                reader.close();
+            } else {
+                this.idle_readers.offer(reader);
+            }
+        }
+    }
+
+    // ======================================================================
+    //
+    // beginWrite()
+    // endWrite()
+    //
+    //     Take and release our write lock around a write, updating our
+    //     contention counters as we go.  The counters are only changed while
+    //     the lock is held, so 'active_writes' reflects writes which are
+    //     actually running rather than waiting for the lock.
+
+    private void beginWrite() {
+
+        this.write_lock.lock();
+        if (this.closed) {
+            this.write_lock.unlock();
+            throw new IllegalStateException("Database has been closed");
+        }
+
+        this.num_writes.incrementAndGet();
+        this.active_writes.incrementAndGet();
+    }
+
+    private void endWrite() {
+
+        this.active_writes.decrementAndGet();
+        this.write_lock.unlock();
+    }
+
+    // ======================================================================
+    //
+    // encodeAnchor(rec_id)
+    //
+    //     Convert a record ID into an anchor string.
+
+    private static String encodeAnchor(long rec_id) {
+
+        return Base64.encodeToString(String.valueOf(rec_id).getBytes(),
+                                     Base64.NO_WRAP);
+    }
+
+    // ======================================================================
+    //
+    // decodeAnchor(anchor)
+    //
+    //     Convert an anchor string back into a record ID.  We return zero if
+    //     the anchor is empty or invalid, so that retrieval starts at the
+    //     oldest location.
+
+    private static long decodeAnchor(String anchor) {
+
+        if ((anchor == null) || anchor.equals("")) {
+            return 0;
+        }
+
+        try {
+            return Long.parseLong(new String(Base64.decode(anchor,
+                                                           Base64.DEFAULT)));
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
+    }
+
+    // ======================================================================
+    //
+    // execPragma(db, pragma)
+    //
+    //     Run the given PRAGMA statement.
+    //
+    //     Some pragmas return rows, which execSQL() doesn't allow, so we run
+    //     them as a query and step through the results instead.
+
+    private static void execPragma(SQLiteDatabase db, String pragma) {
+
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            while (cursor.moveToNext()) {}
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // ======================================================================
+    // ==                                                                  ==
+    // ==                   V I S I T   H E L P E R S                      ==
+    // ==                                                                  ==
+    // ======================================================================
+    //
+    // configureVisitDetection(radius, dwell_time)
+    //
+    //     Set the thresholds used to detect visits.  'radius' is in metres,
+    //     and 'dwell_time' is in seconds.
+
+    public void configureVisitDetection(int radius, int dwell_time) {
+
+        this.visit_detector.configure(radius, dwell_time);
+    }
+
+    // ======================================================================
+    //
+    // getVisits(from, to)
+    //
+    //     Return the list of visits which overlap the given time range.  Both
+    //     'from' and 'to' are timestamps in seconds since the Unix epoch.
+    //
+    //     The visits are returned in order of arrival.
+
+    public List<Visit> getVisits(long from, long to) {
+
+        List<Visit> visits = new ArrayList<Visit>();
+
+        SQLiteDatabase db = this.acquireReader();
+        try {
+            Cursor cursor = db.query("visits",
+                                     new String[] {"id", "arrival", "departure",
+                                                   "latitude", "longitude",
+                                                   "num_locations"},
+                                     "arrival <= ? AND departure >= ?",
+                                     new String[] {String.valueOf(to),
+                                                   String.valueOf(from)},
+                                     null, null, "arrival");
+            try {
+                while (cursor.moveToNext()) {
+                    Visit visit = new Visit(cursor.getLong(1),
+                                            cursor.getLong(2),
+                                            cursor.getDouble(3),
+                                            cursor.getDouble(4),
+                                            cursor.getInt(5));
+                    visit.setId(cursor.getInt(0));
+                    visits.add(visit);
+                }
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            this.releaseReader(db);
+        }
+
+        return visits;
+    }
+
+    // ======================================================================
+    //
+    // resumeLatestVisit(db)
+    //
+    //     Reload our visit detector from the visits table.  If the most recent
+    //     visit ended within VISIT_RESUME_TIME seconds, the detector carries
+    //     on with it; otherwise, the next location starts a new cluster.
+
+    private void resumeLatestVisit(SQLiteDatabase db) {
+
+        this.visit_detector.reset();
+
+        Date now      = new Date();
+        long cur_secs = (long)now.getTime()/1000;
+
+        Cursor cursor = db.query("visits",
+                                 new String[] {"id", "arrival", "departure",
+                                               "latitude", "longitude",
+                                               "num_locations"},
+                                 "departure >= ?",
+                                 new String[] {String.valueOf(
+                                            cur_secs - VISIT_RESUME_TIME)},
+                                 null, null, "departure DESC", "1");
+        try {
+            if (cursor.moveToFirst()) {
+                Visit visit = new Visit(cursor.getLong(1),
+                                        cursor.getLong(2),
+                                        cursor.getDouble(3),
+                                        cursor.getDouble(4),
+                                        cursor.getInt(5));
+                visit.setId(cursor.getInt(0));
+                this.visit_detector.resume(visit);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        this.reload_visit = false;
+    }
+
+    // ======================================================================
+    //
+    // storeVisit(db, visit)
+    //
+    //     Add or update the given visit in the visits table.
+    //
+    //     New visits (with an ID of -1) are inserted, and the visit detector
+    //     is told the new ID so that it updates the same row from now on.
+
+    private void storeVisit(SQLiteDatabase db, Visit visit) {
+
+        ContentValues values = new ContentValues();
+        values.put("arrival",       visit.getArrival());
+        values.put("departure",     visit.getDeparture());
+        values.put("latitude",      visit.getLatitude());
+        values.put("longitude",     visit.getLongitude());
+        values.put("num_locations", visit.getNumLocations());
+
+        if (visit.getId() == -1) {
+            long visit_id = db.insert("visits", null, values);
+            if (visit_id != -1) {
+                this.visit_detector.visitStored((int)visit_id);
+            }
+        } else {
+            db.update("visits", values, "id = ?",
+                      new String[] { String.valueOf(visit.getId()) });
+        }
     }
 
     // ======================================================================
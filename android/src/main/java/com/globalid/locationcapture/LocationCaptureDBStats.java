@@ -0,0 +1,56 @@
+// ##########################################################################
+//
+// LocationCaptureDBStats.java
+//
+// This file implements the LocationCaptureDBStats class.
+//
+// ##########################################################################
+
+package com.globalid.locationcapture;
+
+// ##########################################################################
+//
+// LocationCaptureDBStats
+//
+//     This class encapsulates the contention counters returned by a call to
+//     the LocationCaptureDB.getStats() method.
+//
+//     'num_reads' and 'num_writes' are the number of read and write
+//     operations made against the database.  'overlapping_reads' is the
+//     number of reads which started while a write was in progress, and
+//     'reader_waits' is the number of reads which had to wait for a free
+//     read connection.
+
+public class LocationCaptureDBStats {
+    private long num_reads;
+    private long num_writes;
+    private long overlapping_reads;
+    private long reader_waits;
+
+    public LocationCaptureDBStats(long num_reads,
+                                  long num_writes,
+                                  long overlapping_reads,
+                                  long reader_waits) {
+        this.num_reads         = num_reads;
+        this.num_writes        = num_writes;
+        this.overlapping_reads = overlapping_reads;
+        this.reader_waits      = reader_waits;
+    }
+
+    public long getNumReads() {
+        return this.num_reads;
+    }
+
+    public long getNumWrites() {
+        return this.num_writes;
+    }
+
+    public long getOverlappingReads() {
+        return this.overlapping_reads;
+    }
+
+    public long getReaderWaits() {
+        return this.reader_waits;
+    }
+}
+
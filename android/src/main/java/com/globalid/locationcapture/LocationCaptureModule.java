@@ -12,6 +12,10 @@ package com.globalid.locationcapture;
 import java.util.List;
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.facebook.react.bridge.NativeModule;
 import com.facebook.react.bridge.ReactApplicationContext;
@@ -23,6 +27,7 @@ import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.ReadableMapKeySetIterator;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 
 import android.app.Activity;
@@ -88,6 +93,17 @@ class CurrentLocationListener implements LocationListener {
 
 public class LocationCaptureModule extends ReactContextBaseJavaModule {
 
+    // The number of threads used to run database tasks.  This matches the
+    // size of the database's read connection pool, plus one for writes:
+
+    private static final int DATABASE_THREADS = 3;
+
+    // A task to be run against our database, on one of the database threads:
+
+    private interface DatabaseTask {
+        void run(LocationCaptureDB db) throws Exception;
+    }
+
     private Context context;
     private int     time_filter;
     private int     distance_filter;
@@ -100,7 +116,25 @@ public class LocationCaptureModule extends ReactContextBaseJavaModule {
     private HashMap upload_extra_params;
     private HashMap upload_extra_headers;
     private List    upload_fields;
+    private String  upload_compression;
+    private int     upload_compression_min_size;
+    private boolean upload_compression_dictionary;
     private int     keep_locations_for;
+    private int     visit_radius;
+    private int     visit_dwell_time;
+
+    // The uploader used to send locations to the remote server.  Note that
+    // nothing calls this yet: uploads will be made once start() drives the
+    // background capture.
+
+    private LocationUploader uploader;
+
+    // Our database is opened on a background thread; all database access
+    // goes through the 'db_executor' thread pool, and waits on 'db_future'
+    // until the database is ready:
+
+    private ExecutorService           db_executor;
+    private Future<LocationCaptureDB> db_future;
 
     public LocationCaptureModule(ReactApplicationContext reactContext) {
         super(reactContext);
@@ -116,6 +150,17 @@ public class LocationCaptureModule extends ReactContextBaseJavaModule {
         this.upload_extra_headers   = new HashMap();
         this.upload_fields          = new ArrayList();
         this.keep_locations_for     = 30;
+        this.visit_radius           = 100;
+        this.visit_dwell_time       = 300;
+        this.db_executor            = Executors.newFixedThreadPool(
+                                                    DATABASE_THREADS);
+        this.db_future              = null;
+
+        this.upload_compression            = LocationUploader.COMPRESSION_NONE;
+        this.upload_compression_min_size   = 1024;
+        this.upload_compression_dictionary = false;
+
+        this.uploader = new LocationUploader(reactContext);
 
         this.upload_fields.add("timestamp");
         this.upload_fields.add("latitude");
@@ -127,6 +172,28 @@ public class LocationCaptureModule extends ReactContextBaseJavaModule {
         return "LocationCapture";
     }
 
+    @Override
+    public void initialize() {
+        super.initialize();
+
+        // Start opening the database now that the app has started up, so it
+        // is ready by the time it's first needed.
+
+        this.openDatabase();
+    }
+
+    @Override
+    public void onCatalystInstanceDestroy() {
+        super.onCatalystInstanceDestroy();
+
+        this.runWithDatabase(null, new DatabaseTask() {
+            public void run(LocationCaptureDB db) {
+                db.close();
+            }
+        });
+        this.db_executor.shutdown();
+    }
+
     @ReactMethod
     public void get_current(Promise promise) {
 
@@ -221,10 +288,47 @@ public class LocationCaptureModule extends ReactContextBaseJavaModule {
             }
         }
 
+        if (options.hasKey("upload_compression")) {
+            this.upload_compression = options.getString("upload_compression");
+        }
+
+        if (options.hasKey("upload_compression_min_size")) {
+            this.upload_compression_min_size = options.getInt(
+                                            "upload_compression_min_size");
+        }
+
+        if (options.hasKey("upload_compression_dictionary")) {
+            this.upload_compression_dictionary = options.getBoolean(
+                                            "upload_compression_dictionary");
+        }
+
+        this.uploader.setCompression(this.upload_compression,
+                                     this.upload_compression_min_size,
+                                     this.upload_compression_dictionary);
+
         if (options.hasKey("keep_locations_for")) {
             this.keep_locations_for = options.getInt("keep_locations_for");
         }
 
+        if (options.hasKey("visit_radius")
+                || options.hasKey("visit_dwell_time")) {
+            if (options.hasKey("visit_radius")) {
+                this.visit_radius = options.getInt("visit_radius");
+            }
+            if (options.hasKey("visit_dwell_time")) {
+                this.visit_dwell_time = options.getInt("visit_dwell_time");
+            }
+
+            final int radius     = this.visit_radius;
+            final int dwell_time = this.visit_dwell_time;
+
+            this.runWithDatabase(null, new DatabaseTask() {
+                public void run(LocationCaptureDB db) {
+                    db.configureVisitDetection(radius, dwell_time);
+                }
+            });
+        }
+
         // TODO: Update background task to reflect changed options.
     }
 
@@ -239,13 +343,173 @@ public class LocationCaptureModule extends ReactContextBaseJavaModule {
     }
 
     @ReactMethod
-    public void retrieve(String anchor, int limit, Promise promise) {
-        promise.reject("NOT YET", "");
+    public void retrieve(final String anchor,
+                         final int limit,
+                         final Promise promise) {
+
+        this.runWithDatabase(promise, new DatabaseTask() {
+            public void run(LocationCaptureDB db) {
+                LocationCaptureDBRetrieveResult retrieved =
+                                db.retrieveFromLocationStore(anchor, limit);
+
+                WritableArray locations = Arguments.createArray();
+                for (CapturedLocation location : retrieved.getLocations()) {
+                    WritableMap result = Arguments.createMap();
+
+                    result.putString("timestamp",
+                        Timestamps.format(location.getTimestamp()));
+                    result.putDouble("latitude", location.getLatitude());
+                    result.putDouble("longitude", location.getLongitude());
+                    result.putInt("accuracy", location.getAccuracy());
+                    result.putDouble("heading", location.getHeading());
+                    result.putDouble("speed", location.getSpeed());
+
+                    locations.pushMap(result);
+                }
+
+                WritableMap results = Arguments.createMap();
+                results.putArray("locations", locations);
+                results.putString("next_anchor", retrieved.getNextAnchor());
+
+                promise.resolve(results);
+            }
+        });
     }
 
     @ReactMethod
-    public void getLatestAnchor(Promise promise) {
-        promise.reject("NOT YET", "");
+    public void getLatestAnchor(final Promise promise) {
+
+        this.runWithDatabase(promise, new DatabaseTask() {
+            public void run(LocationCaptureDB db) {
+                promise.resolve(db.getLatestAnchorFromLocationStore());
+            }
+        });
+    }
+
+    @ReactMethod
+    public void getVisits(final double from,
+                          final double to,
+                          final Promise promise) {
+
+        this.runWithDatabase(promise, new DatabaseTask() {
+            public void run(LocationCaptureDB db) {
+                WritableArray results = Arguments.createArray();
+
+                for (Visit visit : db.getVisits((long)from, (long)to)) {
+                    WritableMap result = Arguments.createMap();
+
+                    result.putString("arrival",
+                        Timestamps.format(visit.getArrival()));
+                    result.putString("departure",
+                        Timestamps.format(visit.getDeparture()));
+                    result.putDouble("latitude", visit.getLatitude());
+                    result.putDouble("longitude", visit.getLongitude());
+                    result.putInt("num_locations", visit.getNumLocations());
+
+                    results.pushMap(result);
+                }
+
+                promise.resolve(results);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void getDatabaseStats(final Promise promise) {
+
+        this.runWithDatabase(promise, new DatabaseTask() {
+            public void run(LocationCaptureDB db) {
+                LocationCaptureDBStats stats = db.getStats();
+
+                WritableMap results = Arguments.createMap();
+                results.putDouble("num_reads", stats.getNumReads());
+                results.putDouble("num_writes", stats.getNumWrites());
+                results.putDouble("overlapping_reads",
+                                  stats.getOverlappingReads());
+                results.putDouble("reader_waits", stats.getReaderWaits());
+
+                promise.resolve(results);
+            }
+        });
+    }
+
+    // ======================================================================
+    //
+    // openDatabase()
+    //
+    //     Start opening our database on a database thread, if we haven't
+    //     already done so, and return the Future which will hold the
+    //     database once it is ready.
+    //
+    //     Opening the database creates or upgrades it as required, and loads
+    //     the partition catalog, so none of this slows down the app's
+    //     startup.  If the database can't be opened, the calls already
+    //     waiting on it fail, but the next call tries to open it again.
+
+    private synchronized Future<LocationCaptureDB> openDatabase() {
+
+        if (this.db_future == null) {
+            final Context context = this.context;
+
+            this.db_future = this.db_executor.submit(
+                                        new Callable<LocationCaptureDB>() {
+                public LocationCaptureDB call() {
+                    LocationCaptureDB db = new LocationCaptureDB(context);
+                    try {
+                        db.prepare();
+                    } catch (RuntimeException e) {
+                        db.close();
+                        databaseFailed();
+                        throw e;
+                    }
+                    return db;
+                }
+            });
+        }
+
+        return this.db_future;
+    }
+
+    // ======================================================================
+    //
+    // databaseFailed()
+    //
+    //     Forget our failed attempt to open the database, so that the next
+    //     call to openDatabase() starts a new one.
+
+    private synchronized void databaseFailed() {
+
+        this.db_future = null;
+    }
+
+    // ======================================================================
+    //
+    // runWithDatabase(promise, task)
+    //
+    //     Run the given task against our database on one of the database
+    //     threads, once the database is ready.  Calls made before the
+    //     database has been opened wait on the pending Future, so the bridge
+    //     thread is never blocked.
+    //
+    //     If the task fails and 'promise' is not null, the promise is
+    //     rejected with a "DATABASE ERROR" code.
+
+    private void runWithDatabase(final Promise promise,
+                                 final DatabaseTask task) {
+
+        final Future<LocationCaptureDB> db_future = this.openDatabase();
+
+        this.db_executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    task.run(db_future.get());
+                } catch (Exception e) {
+                    if (promise != null) {
+                        promise.reject("DATABASE ERROR", e);
+                    }
+                }
+            }
+        });
     }
 }
 
@@ -12,18 +12,72 @@
 
 package com.globalid.locationcapture;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.util.Log;
 
 // ##########################################################################
 
 public class LocationUploader {
 
+    // The supported compression methods for our upload requests:
+
+    public static final String COMPRESSION_NONE    = "NONE";
+    public static final String COMPRESSION_GZIP    = "GZIP";
+    public static final String COMPRESSION_DEFLATE = "DEFLATE";
+
+    // The content encoding used for a body compressed with our preset
+    // dictionary.  A standard "deflate" decoder can't inflate such a body,
+    // so it mustn't be sent as "deflate":
+
+    public static final String DICTIONARY_ENCODING = "x-deflate-dictionary";
+
+    // The order in which the uploaded fields appear in our preset
+    // dictionary:
+
+    private static final String[] DICTIONARY_FIELDS = {
+        "timestamp", "latitude", "longitude", "accuracy", "heading", "speed"
+    };
+
+    // The tag to use for our log messages:
+
+    private static final String TAG = "LocationCapture";
+
+    // How long to wait for the remote server, in milliseconds:
+
+    private static final int TIMEOUT = 10000;
+
+    // Our compression settings and upload statistics.  These are guarded by
+    // this object's monitor, as uploads run on a background thread:
+
     private Context context;
+    private String  compression;
+    private int     compression_min_size;
+    private boolean compression_dictionary;
+    private long    last_raw_bytes;
+    private long    last_sent_bytes;
+    private long    total_raw_bytes;
+    private long    total_sent_bytes;
 
     // ======================================================================
     //
@@ -33,13 +87,49 @@ public class LocationUploader {
 
     public LocationUploader(Context context) {
 
-        this.context = context;
+        this.context                = context;
+        this.compression            = COMPRESSION_NONE;
+        this.compression_min_size   = 1024;
+        this.compression_dictionary = false;
+        this.last_raw_bytes         = 0;
+        this.last_sent_bytes        = 0;
+        this.total_raw_bytes        = 0;
+        this.total_sent_bytes       = 0;
+    }
+
+    // ======================================================================
+    //
+    // setCompression(method, min_size, use_dictionary)
+    //
+    //     Set the compression to apply to our upload requests.
+    //
+    //     'method' should be one of COMPRESSION_NONE, COMPRESSION_GZIP or
+    //     COMPRESSION_DEFLATE.  Request bodies smaller than 'min_size' bytes
+    //     are always sent uncompressed, as the compression overhead outweighs
+    //     any savings.  If 'use_dictionary' is true, DEFLATE-compressed JSON
+    //     requests are compressed using a preset dictionary of the field
+    //     names that repeat for every location, and sent with a
+    //     "Content-Encoding" of DICTIONARY_ENCODING; see buildDictionary()
+    //     for the exact contents, which the server needs to decompress the
+    //     body.
+    //
+    //     The compression level is chosen for each upload based on the type
+    //     of network connection: we compress aggressively on a cellular
+    //     connection, where bandwidth is metered, and lightly on wifi.
+
+    public synchronized void setCompression(String  method,
+                               int     min_size,
+                               boolean use_dictionary) {
+
+        this.compression            = method;
+        this.compression_min_size   = min_size;
+        this.compression_dictionary = use_dictionary;
     }
 
     // ======================================================================
     //
     // uploadLocations(locations, url, format, locations_param,
-    //                 extra_params, upload_fields)
+    //                 extra_params, extra_headers, upload_fields)
     //
     //     Attempt to upload a list of locations to the remote server.
     //
@@ -68,6 +158,11 @@ public class LocationUploader {
     //             A HashMap containing additional parameters to send along
     //             with the locations.
     //
+    //         'extra_headers'
+    //
+    //             A HashMap containing additional HTTP headers to include in
+    //             the request.
+    //
     //         'upload_fields'
     //
     //             A List of strings containing the fields to upload for each
@@ -84,6 +179,10 @@ public class LocationUploader {
     //     using the supplied parameters.  Upon completion, we return |true|
     //     if the locations were successfully uploaded, or |false| otherwise.
     //
+    //     The raw and compressed sizes of the request body are written to the
+    //     log for each upload, and can also be obtained afterwards by calling
+    //     getLastRawByteCount() and getLastSentByteCount().
+    //
     //     Note that this method should be called from within an asynchronous
     //     task.
 
@@ -92,8 +191,197 @@ public class LocationUploader {
                                    String format,
                                    String locations_param,
                                    HashMap<String,String> extra_params,
+                                   HashMap<String,String> extra_headers,
                                    List<String> upload_fields) {
-        return false; // Lots more to come...
+
+        if (!this.hasNetworkConnection()) {
+            return false;
+        }
+
+        String  compression;
+        int     compression_min_size;
+        boolean compression_dictionary;
+
+        synchronized (this) {
+            compression            = this.compression;
+            compression_min_size   = this.compression_min_size;
+            compression_dictionary = this.compression_dictionary;
+        }
+
+        // Build the body of our request.
+
+        byte[] body;
+        String content_type;
+
+        try {
+            if (format.equals("JSON")) {
+                body = this.buildJSONBody(locations, locations_param,
+                                          extra_params, upload_fields);
+                content_type = "application/json";
+            } else if (format.equals("FORM_URL_ENCODED")) {
+                body = this.buildFormBody(locations, locations_param,
+                                          extra_params, upload_fields);
+                content_type = "application/x-www-form-urlencoded";
+            } else {
+                return false;
+            }
+        } catch (JSONException e) {
+            return false;
+        } catch (UnsupportedEncodingException e) {
+            return false;
+        }
+
+        // Compress the body, if appropriate.
+
+        String encoding = null;
+        byte[] data     = body;
+
+        if (!compression.equals(COMPRESSION_NONE)
+                && body.length >= compression_min_size) {
+            int level = this.compressionLevel();
+            try {
+                if (compression.equals(COMPRESSION_GZIP)) {
+                    data     = this.gzip(body, level);
+                    encoding = "gzip";
+                } else if (compression.equals(COMPRESSION_DEFLATE)
+                        && compression_dictionary && format.equals("JSON")) {
+                    data     = this.deflate(body, level,
+                                            buildDictionary(locations_param,
+                                                            upload_fields));
+                    encoding = DICTIONARY_ENCODING;
+                } else if (compression.equals(COMPRESSION_DEFLATE)) {
+                    data     = this.deflate(body, level, null);
+                    encoding = "deflate";
+                }
+            } catch (IOException e) {
+                data     = body;
+                encoding = null;
+            }
+
+            // Never send a "compressed" body which is larger than the
+            // original.
+
+            if (data.length >= body.length) {
+                data     = body;
+                encoding = null;
+            }
+        }
+
+        synchronized (this) {
+            this.last_raw_bytes    = body.length;
+            this.last_sent_bytes   = data.length;
+            this.total_raw_bytes  += body.length;
+            this.total_sent_bytes += data.length;
+        }
+
+        Log.d(TAG, "Uploading " + locations.size() + " locations: " +
+                   body.length + " bytes raw, " + data.length + " bytes sent" +
+                   ((encoding != null) ? " (" + encoding + ")" : ""));
+
+        // Finally, send the request off to the server.
+
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection)new URL(url).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(data.length);
+            connection.setRequestProperty("Content-Type", content_type);
+            if (encoding != null) {
+                connection.setRequestProperty("Content-Encoding", encoding);
+            }
+
+            if (extra_headers != null) {
+                for (Map.Entry<String,String> header
+                                            : extra_headers.entrySet()) {
+                    connection.setRequestProperty(header.getKey(),
+                                                  header.getValue());
+                }
+            }
+
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+
+            return connection.getResponseCode() == 201;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    // ======================================================================
+    //
+    // Upload statistics.
+    //
+    //     The "raw" byte counts are the size of the request bodies before
+    //     compression, while the "sent" byte counts are the number of bytes
+    //     actually sent to the server.
+
+    public synchronized long getLastRawByteCount() {
+        return this.last_raw_bytes;
+    }
+
+    public synchronized long getLastSentByteCount() {
+        return this.last_sent_bytes;
+    }
+
+    public synchronized long getTotalRawByteCount() {
+        return this.total_raw_bytes;
+    }
+
+    public synchronized long getTotalSentByteCount() {
+        return this.total_sent_bytes;
+    }
+
+    // ======================================================================
+    //
+    // buildDictionary(locations_param, upload_fields)
+    //
+    //     Return the preset DEFLATE dictionary to use for a JSON-format upload
+    //     request.
+    //
+    //     The dictionary is the UTF-8 encoding of the following string:
+    //
+    //         "<locations_param>":[{"<field1>":,"<field2>":,...}
+    //
+    //     where the uploaded fields are listed in the order timestamp,
+    //     latitude, longitude, accuracy, heading, speed, whatever their order
+    //     in 'upload_fields'.  This matches the dictionary used on iOS.  The
+    //     server must use this same dictionary to decompress the request
+    //     body.
+
+    public static byte[] buildDictionary(String locations_param,
+                                         List<String> upload_fields) {
+
+        StringBuilder dictionary = new StringBuilder();
+        dictionary.append('"').append(locations_param).append("\":[{");
+        boolean first = true;
+        for (String field : DICTIONARY_FIELDS) {
+            if (!upload_fields.contains(field)) {
+                continue;
+            }
+            if (!first) {
+                dictionary.append(',');
+            }
+            dictionary.append('"').append(field).append("\":");
+            first = false;
+        }
+        dictionary.append('}');
+
+        try {
+            return dictionary.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return new byte[0];
+        }
     }
 
     // ======================================================================
@@ -118,5 +406,192 @@ public class LocationUploader {
             return false;
         }
     }
+
+    // ======================================================================
+    //
+    // compressionLevel()
+    //
+    //     Return the compression level to use for the current network
+    //     connection.
+    //
+    //     Cellular data is metered, so we spend the extra CPU time on the best
+    //     compression we can get.  Wifi is cheap, so we only compress lightly.
+
+    private int compressionLevel() {
+        ConnectivityManager manager = (ConnectivityManager)
+                    this.context.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        NetworkInfo network_info = manager.getActiveNetworkInfo();
+
+        if (network_info == null) {
+            return Deflater.DEFAULT_COMPRESSION;
+        } else if (network_info.getType() == ConnectivityManager.TYPE_WIFI) {
+            return Deflater.BEST_SPEED;
+        } else if (network_info.getType() == ConnectivityManager.TYPE_MOBILE) {
+            return Deflater.BEST_COMPRESSION;
+        } else {
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+    }
+
+    // ======================================================================
+    //
+    // gzip(data, level)
+    //
+    //     Return the given data compressed into GZIP format.
+
+    private byte[] gzip(byte[] data, final int level) throws IOException {
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        // GZIPOutputStream doesn't let us set the compression level directly,
+        // so we set it on the underlying Deflater as soon as it's created.
+
+        GZIPOutputStream out = new GZIPOutputStream(buffer) {
+            {
+                this.def.setLevel(level);
+            }
+        };
+
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+
+        return buffer.toByteArray();
+    }
+
+    // ======================================================================
+    //
+    // deflate(data, level, dictionary)
+    //
+    //     Return the given data compressed into zlib ("deflate") format.  If
+    //     'dictionary' is not null, it is used as the preset dictionary.
+
+    private byte[] deflate(byte[] data, int level, byte[] dictionary)
+            throws IOException {
+
+        ByteArrayOutputStream buffer   = new ByteArrayOutputStream();
+        Deflater              deflater = new Deflater(level);
+
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+
+        DeflaterOutputStream out = new DeflaterOutputStream(buffer, deflater);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+            deflater.end();
+        }
+
+        return buffer.toByteArray();
+    }
+
+    // ======================================================================
+    //
+    // buildJSONBody(locations, locations_param, extra_params, upload_fields)
+    //
+    //     Return the body of a JSON-format upload request.
+
+    private byte[] buildJSONBody(List<CapturedLocation> locations,
+                                 String locations_param,
+                                 HashMap<String,String> extra_params,
+                                 List<String> upload_fields)
+            throws JSONException, UnsupportedEncodingException {
+
+        JSONObject post_data = new JSONObject();
+
+        if (extra_params != null) {
+            for (Map.Entry<String,String> param : extra_params.entrySet()) {
+                post_data.put(param.getKey(), param.getValue());
+            }
+        }
+
+        JSONArray json_locations = new JSONArray();
+        for (CapturedLocation location : locations) {
+            JSONObject json_location = new JSONObject();
+            for (String field : upload_fields) {
+                if (field.equals("timestamp")) {
+                    json_location.put(field, Timestamps.format(
+                                                location.getTimestamp()));
+                } else if (field.equals("latitude")) {
+                    json_location.put(field, location.getLatitude());
+                } else if (field.equals("longitude")) {
+                    json_location.put(field, location.getLongitude());
+                } else if (field.equals("accuracy")) {
+                    json_location.put(field, location.getAccuracy());
+                } else if (field.equals("heading")) {
+                    json_location.put(field, location.getHeading());
+                } else if (field.equals("speed")) {
+                    json_location.put(field, location.getSpeed());
+                }
+            }
+            json_locations.put(json_location);
+        }
+        post_data.put(locations_param, json_locations);
+
+        return post_data.toString().getBytes("UTF-8");
+    }
+
+    // ======================================================================
+    //
+    // buildFormBody(locations, locations_param, extra_params, upload_fields)
+    //
+    //     Return the body of an application/x-www-form-urlencoded upload
+    //     request.
+
+    private byte[] buildFormBody(List<CapturedLocation> locations,
+                                 String locations_param,
+                                 HashMap<String,String> extra_params,
+                                 List<String> upload_fields)
+            throws UnsupportedEncodingException {
+
+        List<String> parts = new ArrayList<String>();
+
+        if (extra_params != null) {
+            for (Map.Entry<String,String> param : extra_params.entrySet()) {
+                parts.add(URLEncoder.encode(param.getKey(), "UTF-8") + "=" +
+                          URLEncoder.encode(param.getValue(), "UTF-8"));
+            }
+        }
+
+        for (CapturedLocation location : locations) {
+            for (String field : upload_fields) {
+                String value;
+                if (field.equals("timestamp")) {
+                    value = Timestamps.format(location.getTimestamp());
+                } else if (field.equals("latitude")) {
+                    value = String.valueOf(location.getLatitude());
+                } else if (field.equals("longitude")) {
+                    value = String.valueOf(location.getLongitude());
+                } else if (field.equals("accuracy")) {
+                    value = String.valueOf(location.getAccuracy());
+                } else if (field.equals("heading")) {
+                    value = String.valueOf(location.getHeading());
+                } else if (field.equals("speed")) {
+                    value = String.valueOf(location.getSpeed());
+                } else {
+                    continue;
+                }
+
+                String key = locations_param + "[" + field + "]";
+                parts.add(URLEncoder.encode(key, "UTF-8") + "=" +
+                          URLEncoder.encode(value, "UTF-8"));
+            }
+        }
+
+        StringBuilder body = new StringBuilder();
+        for (int i=0; i < parts.size(); i++) {
+            if (i > 0) {
+                body.append('&');
+            }
+            body.append(parts.get(i));
+        }
+
+        return body.toString().getBytes("UTF-8");
+    }
 }
 
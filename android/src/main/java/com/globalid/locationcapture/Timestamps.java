@@ -0,0 +1,36 @@
+// ##########################################################################
+//
+// Timestamps.java
+//
+// This file defines the "Timestamps" class, which holds helper methods for
+// working with the timestamps stored in our database.  Timestamps are stored
+// as a number of seconds since the Unix epoch.
+//
+// ##########################################################################
+
+package com.globalid.locationcapture;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+// ##########################################################################
+
+class Timestamps {
+
+    // ======================================================================
+    //
+    // format(timestamp)
+    //
+    //     Convert the given timestamp (in seconds since the Unix epoch) into
+    //     an RFC-3339 format string, including the user's current time zone
+    //     offset.
+
+    static String format(long timestamp) {
+
+        SimpleDateFormat formatter = new SimpleDateFormat(
+                                        "yyyy-MM-dd'T'HH:mm:ssZ", Locale.US);
+        return formatter.format(new Date(timestamp * 1000));
+    }
+}
+
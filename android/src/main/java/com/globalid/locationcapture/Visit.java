@@ -0,0 +1,121 @@
+// ##########################################################################
+//
+// Visit.java
+//
+// This file defines the "Visit" class.  A Visit is an object encapsulating a
+// place where the user stayed for some time, as stored in the "visits" table
+// in the database.
+//
+// ##########################################################################
+
+package com.globalid.locationcapture;
+
+// ##########################################################################
+
+public class Visit {
+
+    private int    id;
+    private long   arrival;
+    private long   departure;
+    private double latitude;
+    private double longitude;
+    private int    num_locations;
+
+    // ======================================================================
+    //
+    // Default constructor.
+
+    public Visit() {
+        this.id = -1;
+    }
+
+    // ======================================================================
+    //
+    // Standard constructor.
+
+    public Visit(long   arrival,
+                 long   departure,
+                 double latitude,
+                 double longitude,
+                 int    num_locations) {
+        super();
+        this.id            = -1;
+        this.arrival       = arrival;
+        this.departure     = departure;
+        this.latitude      = latitude;
+        this.longitude     = longitude;
+        this.num_locations = num_locations;
+    }
+
+    // ======================================================================
+    //
+    // Getters and setters.
+    //
+    //     Note that the ID will be -1 if the visit hasn't been stored in the
+    //     database yet.
+
+    public int getId() {
+        return this.id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public long getArrival() {
+        return this.arrival;
+    }
+
+    public void setArrival(long arrival) {
+        this.arrival = arrival;
+    }
+
+    public long getDeparture() {
+        return this.departure;
+    }
+
+    public void setDeparture(long departure) {
+        this.departure = departure;
+    }
+
+    public double getLatitude() {
+        return this.latitude;
+    }
+
+    public void setLatitude(double latitude) {
+        this.latitude = latitude;
+    }
+
+    public double getLongitude() {
+        return this.longitude;
+    }
+
+    public void setLongitude(double longitude) {
+        this.longitude = longitude;
+    }
+
+    public int getNumLocations() {
+        return this.num_locations;
+    }
+
+    public void setNumLocations(int num_locations) {
+        this.num_locations = num_locations;
+    }
+
+    // ======================================================================
+    //
+    // toString()
+    //
+    //     Return a string representation of this visit, for debugging.
+
+    @Override
+    public String toString() {
+        return "Visit [id=" + this.id +
+                    ", arrival=" + this.arrival +
+                    ", departure=" + this.departure +
+                    ", latitude=" + this.latitude +
+                    ", longitude=" + this.longitude +
+                    ", num_locations=" + this.num_locations + "]";
+    }
+}
+
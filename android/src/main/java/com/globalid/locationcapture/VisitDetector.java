@@ -0,0 +1,215 @@
+// ##########################################################################
+//
+// VisitDetector.java
+//
+// This file defines the "VisitDetector" class.  This class detects visits
+// (places where the user stayed within a given radius for at least a given
+// amount of time) from the stream of captured locations.
+//
+// The detector only remembers the visit currently in progress, so it uses a
+// constant amount of memory no matter how many locations are fed into it.
+//
+// ##########################################################################
+
+package com.globalid.locationcapture;
+
+// ##########################################################################
+
+public class VisitDetector {
+
+    // The mean radius of the earth, in metres:
+
+    private static final double EARTH_RADIUS = 6371000.0;
+
+    // If no location arrives for more than this many seconds, the visit in
+    // progress is finished even if the next location is at the same place:
+
+    public static final long MAX_GAP = 3600;
+
+    private int    radius;
+    private int    dwell_time;
+
+    // The cluster of locations currently in progress:
+
+    private int    num_locations;
+    private double latitude;
+    private double longitude;
+    private long   arrival;
+    private long   departure;
+    private int    visit_id;
+
+    // ======================================================================
+    //
+    // VisitDetector(radius, dwell_time)
+    //
+    //     Standard constructor.
+    //
+    //     'radius' is the maximum distance, in metres, the user can move away
+    //     from the centre of a visit while still being there.  'dwell_time'
+    //     is the minimum number of seconds the user must stay within that
+    //     radius for the stay to count as a visit.
+
+    public VisitDetector(int radius, int dwell_time) {
+
+        this.radius        = radius;
+        this.dwell_time    = dwell_time;
+        this.num_locations = 0;
+        this.visit_id      = -1;
+    }
+
+    // ======================================================================
+    //
+    // configure(radius, dwell_time)
+    //
+    //     Change the thresholds used to detect visits.  The new thresholds
+    //     apply from the next location onwards; any visit in progress is
+    //     kept, so that a stay which continues goes on updating the same
+    //     visit.
+
+    public synchronized void configure(int radius, int dwell_time) {
+
+        this.radius     = radius;
+        this.dwell_time = dwell_time;
+    }
+
+    // ======================================================================
+    //
+    // reset()
+    //
+    //     Forget any visit in progress, so that the next location starts a
+    //     new cluster.
+
+    public synchronized void reset() {
+
+        this.num_locations = 0;
+        this.visit_id      = -1;
+    }
+
+    // ======================================================================
+    //
+    // resume(visit)
+    //
+    //     Carry on with the given stored visit as the visit in progress.
+    //
+    //     This is used when the database is opened, so that a stay which
+    //     continues after the app restarts extends the existing visit rather
+    //     than adding a second, overlapping one.
+
+    public synchronized void resume(Visit visit) {
+
+        this.num_locations = visit.getNumLocations();
+        this.latitude      = visit.getLatitude();
+        this.longitude     = visit.getLongitude();
+        this.arrival       = visit.getArrival();
+        this.departure     = visit.getDeparture();
+        this.visit_id      = visit.getId();
+    }
+
+    // ======================================================================
+    //
+    // addLocation(location)
+    //
+    //     Add a newly-stored location to the detector.
+    //
+    //     If the location is part of a visit which has lasted at least
+    //     'dwell_time' seconds, we return a Visit object describing the visit
+    //     as it now stands.  If the returned visit has an ID of -1, it is a
+    //     new visit which should be added to the database; otherwise it is an
+    //     existing visit which should be updated.  The caller should then
+    //     pass the stored visit's ID to visitStored().
+    //
+    //     If the location is not (yet) part of a visit, we return null.
+    //
+    //     A location older than the latest one in the cluster arrived out of
+    //     order, and is ignored rather than breaking up the visit.  A location
+    //     more than MAX_GAP seconds after the latest one starts a new cluster,
+    //     so that a gap in capturing doesn't stretch one visit across it.
+
+    public synchronized Visit addLocation(CapturedLocation location) {
+
+        long timestamp = location.getTimestamp();
+
+        if ((this.num_locations > 0) && (timestamp < this.departure)) {
+            return null;
+        }
+
+        if ((this.num_locations > 0)
+                && (timestamp - this.departure <= MAX_GAP)
+                && (distance(this.latitude, this.longitude,
+                             location.getLatitude(),
+                             location.getLongitude()) <= this.radius)) {
+
+            // The user is still at the same place.  Move the centroid to
+            // include the new location.
+
+            this.num_locations++;
+            this.latitude  += (location.getLatitude() - this.latitude)
+                            / this.num_locations;
+            this.longitude += (location.getLongitude() - this.longitude)
+                            / this.num_locations;
+            this.departure  = timestamp;
+        } else {
+
+            // The user has moved on, we haven't heard from them for too
+            // long, or this is our first location.  Any visit in progress
+            // has already been written out, so we simply start a new cluster
+            // at this location.
+
+            this.num_locations = 1;
+            this.latitude      = location.getLatitude();
+            this.longitude     = location.getLongitude();
+            this.arrival       = timestamp;
+            this.departure     = timestamp;
+            this.visit_id      = -1;
+        }
+
+        if (this.departure - this.arrival < this.dwell_time) {
+            return null;
+        }
+
+        Visit visit = new Visit(this.arrival, this.departure,
+                                this.latitude, this.longitude,
+                                this.num_locations);
+        visit.setId(this.visit_id);
+        return visit;
+    }
+
+    // ======================================================================
+    //
+    // visitStored(visit_id)
+    //
+    //     Tell the detector the database ID of the visit currently in
+    //     progress, so that future locations update the existing visit rather
+    //     than adding a new one.
+
+    public synchronized void visitStored(int visit_id) {
+
+        this.visit_id = visit_id;
+    }
+
+    // ======================================================================
+    // ==                                                                  ==
+    // ==                  P R I V A T E   M E T H O D S                   ==
+    // ==                                                                  ==
+    // ======================================================================
+    //
+    // distance(lat1, long1, lat2, long2)
+    //
+    //     Return the great-circle distance between the two given points, in
+    //     metres.
+
+    private static double distance(double lat1, double long1,
+                                   double lat2, double long2) {
+
+        double d_lat  = Math.toRadians(lat2 - lat1);
+        double d_long = Math.toRadians(long2 - long1);
+
+        double a = Math.sin(d_lat / 2) * Math.sin(d_lat / 2)
+                 + Math.cos(Math.toRadians(lat1))
+                 * Math.cos(Math.toRadians(lat2))
+                 * Math.sin(d_long / 2) * Math.sin(d_long / 2);
+
+        return 2 * EARTH_RADIUS * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+}
+
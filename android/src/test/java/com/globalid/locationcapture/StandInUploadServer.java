@@ -0,0 +1,230 @@
+// ##########################################################################
+//
+// StandInUploadServer.java
+//
+// This file defines the "StandInUploadServer" class.  This class is a local
+// HTTP server which stands in for the remote server when replaying GPS
+// traces.
+//
+// The server accepts JSON-format upload requests, decompressing them as
+// required, and counts the requests, bytes and locations it receives.  Each
+// valid request gets a "201 Created" response, as the real server gives.
+//
+// ##########################################################################
+
+package com.globalid.locationcapture;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// ##########################################################################
+
+public class StandInUploadServer {
+
+    private HttpServer server;
+    private String     locations_param;
+    private byte[]     dictionary;
+
+    // Our counters.  These are guarded by this object's monitor, as requests
+    // are handled on the server's own thread:
+
+    private int  num_requests;
+    private int  num_locations;
+    private long received_bytes;
+
+    // ======================================================================
+    //
+    // StandInUploadServer(locations_param, dictionary)
+    //
+    //     Standard constructor.
+    //
+    //     'locations_param' is the name of the parameter holding the array of
+    //     uploaded locations.  'dictionary' is the preset dictionary used to
+    //     inflate request bodies sent with LocationUploader's
+    //     DICTIONARY_ENCODING.
+
+    public StandInUploadServer(String locations_param, byte[] dictionary) {
+
+        this.locations_param = locations_param;
+        this.dictionary      = dictionary;
+        this.num_requests    = 0;
+        this.num_locations   = 0;
+        this.received_bytes  = 0;
+    }
+
+    // ======================================================================
+    //
+    // start()
+    // stop()
+    //
+    //     Start and stop the server.  The server listens on a free port on
+    //     the loopback interface.
+
+    public void start() throws IOException {
+
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0),
+                                        0);
+        this.server.createContext("/locations", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleUpload(exchange);
+            }
+        });
+        this.server.start();
+    }
+
+    public void stop() {
+
+        this.server.stop(0);
+    }
+
+    // ======================================================================
+    //
+    // getURL()
+    //
+    //     Return the URL to upload locations to.
+
+    public String getURL() {
+
+        return "http://127.0.0.1:" + this.server.getAddress().getPort() +
+               "/locations";
+    }
+
+    // ======================================================================
+    //
+    // Server statistics.
+
+    public synchronized int getNumRequests() {
+        return this.num_requests;
+    }
+
+    public synchronized int getNumLocations() {
+        return this.num_locations;
+    }
+
+    public synchronized long getReceivedByteCount() {
+        return this.received_bytes;
+    }
+
+    // ======================================================================
+    // ==                                                                  ==
+    // ==                  P R I V A T E   M E T H O D S                   ==
+    // ==                                                                  ==
+    // ======================================================================
+    //
+    // handleUpload(exchange)
+    //
+    //     Handle an upload request.
+
+    private void handleUpload(HttpExchange exchange) throws IOException {
+
+        try {
+            byte[] body     = readAll(exchange.getRequestBody());
+            String encoding = exchange.getRequestHeaders()
+                                      .getFirst("Content-Encoding");
+
+            byte[] data;
+            if (encoding == null) {
+                data = body;
+            } else if (encoding.equals("gzip")) {
+                data = readAll(new GZIPInputStream(
+                                        new ByteArrayInputStream(body)));
+            } else if (encoding.equals("deflate")) {
+                data = readAll(new InflaterInputStream(
+                                        new ByteArrayInputStream(body)));
+            } else if (encoding.equals(LocationUploader.DICTIONARY_ENCODING)) {
+                data = this.inflateWithDictionary(body);
+            } else {
+                exchange.sendResponseHeaders(415, -1);
+                return;
+            }
+
+            JSONObject post_data = new JSONObject(new String(data, "UTF-8"));
+            int num_locations = post_data.getJSONArray(this.locations_param)
+                                         .length();
+
+            synchronized (this) {
+                this.num_requests++;
+                this.num_locations  += num_locations;
+                this.received_bytes += body.length;
+            }
+
+            exchange.sendResponseHeaders(201, -1);
+        } catch (JSONException e) {
+            exchange.sendResponseHeaders(400, -1);
+        } catch (IOException e) {
+            exchange.sendResponseHeaders(400, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // ======================================================================
+    //
+    // inflateWithDictionary(body)
+    //
+    //     Decompress a request body compressed using our preset dictionary.
+
+    private byte[] inflateWithDictionary(byte[] body) throws IOException {
+
+        ByteArrayOutputStream data     = new ByteArrayOutputStream();
+        Inflater              inflater = new Inflater();
+        byte[]                buffer   = new byte[4096];
+
+        inflater.setInput(body);
+        try {
+            while (!inflater.finished()) {
+                int num_bytes = inflater.inflate(buffer);
+                if (num_bytes > 0) {
+                    data.write(buffer, 0, num_bytes);
+                } else if (inflater.needsDictionary()) {
+                    inflater.setDictionary(this.dictionary);
+                } else if (inflater.needsInput()) {
+                    throw new IOException("Truncated request body");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid request body", e);
+        } finally {
+            inflater.end();
+        }
+
+        return data.toByteArray();
+    }
+
+    // ======================================================================
+    //
+    // readAll(in)
+    //
+    //     Read the rest of the given input stream, returning its contents.
+
+    private static byte[] readAll(InputStream in) throws IOException {
+
+        ByteArrayOutputStream data   = new ByteArrayOutputStream();
+        byte[]                buffer = new byte[4096];
+
+        try {
+            int num_bytes;
+            while ((num_bytes = in.read(buffer)) != -1) {
+                data.write(buffer, 0, num_bytes);
+            }
+        } finally {
+            in.close();
+        }
+
+        return data.toByteArray();
+    }
+}
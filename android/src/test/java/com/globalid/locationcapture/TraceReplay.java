@@ -0,0 +1,340 @@
+// ##########################################################################
+//
+// TraceReplay.java
+//
+// This file defines the "TraceReplay" class.  This class replays a recorded
+// GPS trace through the location capture pipeline, timing each stage as it
+// goes.
+//
+// Each location in the trace is added to the location store.  Every
+// 'batch_size' locations, the new locations are retrieved from the store and
+// uploaded to the remote server, just as the app would do.  Visit detection
+// happens as part of adding each location, so it is included in the time
+// taken to store a location.
+//
+// ##########################################################################
+
+package com.globalid.locationcapture;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+// ##########################################################################
+
+public class TraceReplay {
+
+    private LocationCaptureDB db;
+    private File              database_file;
+    private LocationUploader  uploader;
+    private String            upload_url;
+    private List<String>      upload_fields;
+    private int               batch_size;
+    private double            speed;
+
+    // The time taken by each call to each stage, in nanoseconds:
+
+    private List<Long> store_times;
+    private List<Long> retrieve_times;
+    private List<Long> upload_times;
+
+    // Our overall results:
+
+    private String anchor;
+    private int    num_stored;
+    private int    num_uploaded;
+    private long   elapsed;
+    private long   database_size_before;
+    private long   database_size_after;
+
+    // ======================================================================
+    //
+    // TraceReplay(db, database_file, uploader, upload_url, upload_fields,
+    //             batch_size, speed)
+    //
+    //     Standard constructor.
+    //
+    //     'database_file' is the file holding 'db', and is used to measure how
+    //     much the database grows.  'speed' is how many times faster than
+    //     real time to replay the trace; if this is zero, the trace is
+    //     replayed as fast as possible.
+
+    public TraceReplay(LocationCaptureDB db,
+                       File              database_file,
+                       LocationUploader  uploader,
+                       String            upload_url,
+                       List<String>      upload_fields,
+                       int               batch_size,
+                       double            speed) {
+
+        this.db            = db;
+        this.database_file = database_file;
+        this.uploader      = uploader;
+        this.upload_url    = upload_url;
+        this.upload_fields = upload_fields;
+        this.batch_size    = batch_size;
+        this.speed         = speed;
+
+        this.store_times    = new ArrayList<Long>();
+        this.retrieve_times = new ArrayList<Long>();
+        this.upload_times   = new ArrayList<Long>();
+
+        this.anchor       = "";
+        this.num_stored   = 0;
+        this.num_uploaded = 0;
+        this.elapsed      = 0;
+    }
+
+    // ======================================================================
+    //
+    // readTrace(reader)
+    //
+    //     Read a GPS trace in CSV format, returning a list of CapturedLocation
+    //     objects.
+    //
+    //     Each line of the trace should hold the following comma-separated
+    //     fields:
+    //
+    //         timestamp,latitude,longitude,accuracy,heading,speed
+    //
+    //     where the timestamp is a number of seconds since the Unix epoch.  A
+    //     header line starting with "timestamp", and any blank lines, are
+    //     skipped.
+
+    public static List<CapturedLocation> readTrace(Reader reader)
+            throws IOException {
+
+        List<CapturedLocation> trace  = new ArrayList<CapturedLocation>();
+        BufferedReader         lines  = new BufferedReader(reader);
+
+        String line;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            if (line.equals("") || line.startsWith("timestamp")) {
+                continue;
+            }
+
+            String[] fields = line.split(",");
+            if (fields.length != 6) {
+                throw new IOException("Invalid trace line: " + line);
+            }
+
+            trace.add(new CapturedLocation(Long.parseLong(fields[0]),
+                                           Double.parseDouble(fields[1]),
+                                           Double.parseDouble(fields[2]),
+                                           Integer.parseInt(fields[3]),
+                                           Double.parseDouble(fields[4]),
+                                           Double.parseDouble(fields[5])));
+        }
+
+        return trace;
+    }
+
+    // ======================================================================
+    //
+    // run(trace)
+    //
+    //     Replay the given trace.
+    //
+    //     The trace's timestamps are moved so that its last location is
+    //     captured now, so that the locations end up in the same partitions
+    //     they would if they had just been captured.
+
+    public void run(List<CapturedLocation> trace) throws InterruptedException {
+
+        if (trace.isEmpty()) {
+            return;
+        }
+
+        long first_timestamp = trace.get(0).getTimestamp();
+        long last_timestamp  = trace.get(trace.size()-1).getTimestamp();
+        long cur_secs        = (long)new Date().getTime()/1000;
+
+        for (CapturedLocation location : trace) {
+            location.setTimestamp(location.getTimestamp()
+                                  + (cur_secs - last_timestamp));
+        }
+
+        first_timestamp += cur_secs - last_timestamp;
+
+        this.database_size_before = this.databaseSize();
+
+        long start = System.nanoTime();
+
+        for (int i=0; i < trace.size(); i++) {
+            CapturedLocation location = trace.get(i);
+
+            // If we're replaying at a given speed, wait until this location
+            // is due.
+
+            if (this.speed > 0) {
+                long due = start + (long)((location.getTimestamp()
+                                           - first_timestamp)
+                                          * 1000000000L / this.speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+                }
+            }
+
+            long started = System.nanoTime();
+            this.db.addToLocationStore(location);
+            this.store_times.add(System.nanoTime() - started);
+            this.num_stored++;
+
+            if (((i+1) % this.batch_size == 0) || (i == trace.size()-1)) {
+                this.uploadNewLocations();
+            }
+        }
+
+        this.elapsed = System.nanoTime() - start;
+
+        this.database_size_after = this.databaseSize();
+    }
+
+    // ======================================================================
+    //
+    // Replay results.
+
+    public int getNumStored() {
+        return this.num_stored;
+    }
+
+    public int getNumUploaded() {
+        return this.num_uploaded;
+    }
+
+    // ======================================================================
+    //
+    // report()
+    //
+    //     Return a human-readable report of the replay's throughput, the
+    //     latency of each stage, the growth of the database and the number
+    //     of bytes uploaded.
+
+    public String report() {
+
+        double secs = this.elapsed / 1000000000.0;
+
+        StringBuilder report = new StringBuilder();
+
+        report.append(String.format(
+                    "Replayed %d locations in %.3f s (%.1f locations/s)\n",
+                    this.num_stored, secs,
+                    (secs > 0) ? this.num_stored / secs : 0.0));
+
+        report.append(latencies("store",    this.store_times));
+        report.append(latencies("retrieve", this.retrieve_times));
+        report.append(latencies("upload",   this.upload_times));
+
+        report.append(String.format(
+                    "database: %d bytes before, %d bytes after (%+d)\n",
+                    this.database_size_before, this.database_size_after,
+                    this.database_size_after - this.database_size_before));
+
+        report.append(String.format(
+                    "uploaded: %d locations, %d bytes raw, %d bytes sent\n",
+                    this.num_uploaded,
+                    this.uploader.getTotalRawByteCount(),
+                    this.uploader.getTotalSentByteCount()));
+
+        return report.toString();
+    }
+
+    // ======================================================================
+    // ==                                                                  ==
+    // ==                  P R I V A T E   M E T H O D S                   ==
+    // ==                                                                  ==
+    // ======================================================================
+    //
+    // uploadNewLocations()
+    //
+    //     Retrieve the locations added since our last upload, and upload them
+    //     to the remote server.
+
+    private void uploadNewLocations() {
+
+        long started = System.nanoTime();
+        LocationCaptureDBRetrieveResult retrieved =
+                        this.db.retrieveFromLocationStore(this.anchor, -1);
+        this.retrieve_times.add(System.nanoTime() - started);
+
+        List<CapturedLocation> locations = retrieved.getLocations();
+        if (locations.isEmpty()) {
+            return;
+        }
+
+        started = System.nanoTime();
+        boolean uploaded = this.uploader.uploadLocations(locations,
+                                                         this.upload_url,
+                                                         "JSON",
+                                                         "locations",
+                                                         null,
+                                                         null,
+                                                         this.upload_fields);
+        this.upload_times.add(System.nanoTime() - started);
+
+        if (!uploaded) {
+            throw new IllegalStateException("Unable to upload locations");
+        }
+
+        this.num_uploaded += locations.size();
+        this.anchor        = retrieved.getNextAnchor();
+    }
+
+    // ======================================================================
+    //
+    // databaseSize()
+    //
+    //     Return the current size of our database, in bytes, including its
+    //     write-ahead log.
+
+    private long databaseSize() {
+
+        File wal = new File(this.database_file.getPath() + "-wal");
+        return this.database_file.length() + wal.length();
+    }
+
+    // ======================================================================
+    //
+    // latencies(stage, times)
+    //
+    //     Return a line of our report summarising the given latencies for the
+    //     given stage, in milliseconds.
+
+    private static String latencies(String stage, List<Long> times) {
+
+        List<Long> sorted = new ArrayList<Long>(times);
+        Collections.sort(sorted);
+
+        return String.format(
+                "%-9s n=%d p50=%.3f ms p90=%.3f ms p99=%.3f ms max=%.3f ms\n",
+                stage + ":", sorted.size(),
+                percentile(sorted, 50)  / 1000000.0,
+                percentile(sorted, 90)  / 1000000.0,
+                percentile(sorted, 99)  / 1000000.0,
+                percentile(sorted, 100) / 1000000.0);
+    }
+
+    // ======================================================================
+    //
+    // percentile(sorted, percent)
+    //
+    //     Return the given percentile of a sorted list of values, using the
+    //     nearest-rank method.  We return zero if the list is empty.
+
+    private static long percentile(List<Long> sorted, double percent) {
+
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+
+        int rank = (int)Math.ceil(percent / 100.0 * sorted.size());
+        return sorted.get(Math.max(rank, 1) - 1);
+    }
+}
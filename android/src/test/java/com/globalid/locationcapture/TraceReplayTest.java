@@ -0,0 +1,138 @@
+// ##########################################################################
+//
+// TraceReplayTest.java
+//
+// This file replays a recorded GPS trace through the location store and the
+// uploader, against a local stand-in for the remote server, and reports the
+// throughput, per-stage latencies, database growth and bytes uploaded.
+//
+// The replay can be tuned using the following system properties:
+//
+//     replay.trace        The path to a CSV trace to replay.  By default, the
+//                         bundled "traces/walk.csv" trace is used.
+//
+//     replay.speed        How many times faster than real time to replay the
+//                         trace.  Default = 0, meaning as fast as possible.
+//
+//     replay.batch_size   The number of locations to store between uploads.
+//                         Default = 100.
+//
+//     replay.compression  The upload compression to use: NONE, GZIP or
+//                         DEFLATE.  Default = GZIP.
+//
+//     replay.dictionary   Set to "true" to use a preset dictionary for
+//                         DEFLATE compression.  Default = false.
+//
+// ##########################################################################
+
+package com.globalid.locationcapture;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import android.content.Context;
+
+// ##########################################################################
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23, manifest = Config.NONE)
+public class TraceReplayTest {
+
+    private static final List<String> UPLOAD_FIELDS =
+                    Arrays.asList("timestamp", "latitude", "longitude",
+                                  "accuracy", "heading", "speed");
+
+    // ======================================================================
+
+    @Test
+    public void replayTrace() throws Exception {
+
+        Context context = RuntimeEnvironment.application;
+
+        List<CapturedLocation> trace = readTrace();
+
+        StandInUploadServer server = new StandInUploadServer(
+                    "locations",
+                    LocationUploader.buildDictionary("locations",
+                                                     UPLOAD_FIELDS));
+        server.start();
+
+        LocationCaptureDB db = new LocationCaptureDB(context);
+        try {
+            db.prepare();
+
+            LocationUploader uploader = new LocationUploader(context);
+            uploader.setCompression(
+                        System.getProperty("replay.compression",
+                                           LocationUploader.COMPRESSION_GZIP),
+                        1024,
+                        Boolean.getBoolean("replay.dictionary"));
+
+            TraceReplay replay = new TraceReplay(
+                        db,
+                        context.getDatabasePath("LocationCapture"),
+                        uploader,
+                        server.getURL(),
+                        UPLOAD_FIELDS,
+                        Integer.getInteger("replay.batch_size", 100),
+                        Double.parseDouble(System.getProperty("replay.speed",
+                                                              "0")));
+            replay.run(trace);
+
+            System.out.print(replay.report());
+
+            // Every location in the trace should have made it through to
+            // the server, exactly once.
+
+            assertEquals(trace.size(), replay.getNumStored());
+            assertEquals(trace.size(), replay.getNumUploaded());
+            assertEquals(trace.size(), server.getNumLocations());
+            assertEquals(uploader.getTotalSentByteCount(),
+                         server.getReceivedByteCount());
+        } finally {
+            db.close();
+            server.stop();
+        }
+    }
+
+    // ======================================================================
+    //
+    // readTrace()
+    //
+    //     Read the trace to replay, as given by the "replay.trace" system
+    //     property, or the bundled trace if that isn't set.
+
+    private static List<CapturedLocation> readTrace() throws IOException {
+
+        String path = System.getProperty("replay.trace");
+
+        Reader reader;
+        if (path != null) {
+            reader = new FileReader(new File(path));
+        } else {
+            reader = new InputStreamReader(
+                        TraceReplayTest.class.getClassLoader()
+                                        .getResourceAsStream("traces/walk.csv"),
+                        "UTF-8");
+        }
+
+        try {
+            return TraceReplay.readTrace(reader);
+        } finally {
+            reader.close();
+        }
+    }
+}
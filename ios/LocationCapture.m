@@ -8,6 +8,8 @@
 #import "TMReachability.h"
 #import "LocationStore.h"
 
+#import <zlib.h>
+
 // ##########################################################################
 //
 // Should we write debugging messages to the console?
@@ -34,6 +36,17 @@ typedef enum {
     kUploadRequestFormatFormURLEncoded
 } UploadRequestFormat;
 
+// ##########################################################################
+//
+// The following enumerator type defines the various types of compression we
+// support for the body of our upload requests:
+
+typedef enum {
+    kUploadCompressionNone,
+    kUploadCompressionGzip,
+    kUploadCompressionDeflate
+} UploadCompression;
+
 // ##########################################################################
 //
 // Our private interface:
@@ -59,6 +72,9 @@ typedef enum {
 @property (atomic, assign) BOOL                   upload_field_accuracy;
 @property (atomic, assign) BOOL                   upload_field_heading;
 @property (atomic, assign) BOOL                   upload_field_speed;
+@property (atomic, assign) UploadCompression      upload_compression;
+@property (atomic, strong) NSNumber*              upload_compression_min_size;
+@property (atomic, assign) BOOL                   upload_compression_dictionary;
 @property (atomic, assign) BOOL                   in_background;
 @property (atomic, strong) CLLocationManager*     background_location_manager;
 @property (atomic, strong) NSDate*                last_update;
@@ -197,6 +213,61 @@ typedef enum {
 
 - (NSArray*) locations_for_upload:(NSArray*)locations;
 
+// ==========================================================================
+//
+// compress_request:
+//
+//     Compress the body of the given upload request, if we've been configured
+//     to do so.
+//
+//     If compression is turned on and the request body is at least
+//     self.upload_compression_min_size bytes long, we return a copy of the
+//     request with a compressed body and the matching "Content-Encoding"
+//     header.  Otherwise, or if compressing the body wouldn't make it any
+//     smaller, the request is returned unchanged.
+//
+//     The compression level depends on our current connection to the server:
+//     we compress as tightly as possible over a cellular connection, where
+//     data is metered, and only lightly over wifi.
+
+- (NSURLRequest*) compress_request:(NSURLRequest*)request;
+
+// ==========================================================================
+//
+// compress_data:window_bits:level:dictionary:
+//
+//     Compress the given data using zlib.
+//
+//     'window_bits' is passed straight on to deflateInit2(), and so selects
+//     the output format: 15 for zlib ("deflate") format, or 31 for gzip
+//     format.  'level' is the zlib compression level to use.  If
+//     'dictionary' is not nil, it is used as the preset dictionary.
+//
+//     We return the compressed data, or nil if the data could not be
+//     compressed.
+
+- (NSData*) compress_data:(NSData*)data
+              window_bits:(int)window_bits
+                    level:(int)level
+               dictionary:(NSData*)dictionary;
+
+// ==========================================================================
+//
+// compression_dictionary
+//
+//     Return the preset dictionary to use when compressing a JSON-format
+//     upload request.
+//
+//     The dictionary is the UTF-8 encoding of the following string:
+//
+//         "<locations_param>":[{"<field1>":,"<field2>":,...}
+//
+//     where the uploaded fields are listed in the order timestamp, latitude,
+//     longitude, accuracy, heading, speed.  The server must use this same
+//     dictionary to decompress the request body.
+
+- (NSData*) compression_dictionary;
+
 // ==========================================================================
 //
 // on_enter_background
@@ -261,29 +332,32 @@ RCT_EXPORT_MODULE();
 - (id) init {
 
     if (self = [super init]) {
-        self.cur_location_manager        = nil;
-        self.cur_location_resolve        = nil;
-        self.cur_location_reject         = nil;
-        self.time_filter                 = nil;
-        self.distance_filter             = nil;
-        self.upload_enabled              = NO;
-        self.upload_url                  = nil;
-        self.upload_connection_type      = kUploadWifiOnly;
-        self.upload_frequency            = 0;
-        self.upload_request_format       = kUploadRequestFormatJSON;
-        self.upload_locations_param      = @"locations";
-        self.upload_extra_params         = nil;
-        self.upload_extra_headers        = nil;
-        self.upload_field_timestamp      = YES;
-        self.upload_field_latitude       = YES;
-        self.upload_field_longitude      = YES;
-        self.upload_field_accuracy       = NO;
-        self.upload_field_heading        = NO;
-        self.upload_field_speed          = NO;
-        self.in_background               = NO;
-        self.background_location_manager = nil;
-        self.last_update                 = nil;
-        self.last_upload                 = nil;
+        self.cur_location_manager          = nil;
+        self.cur_location_resolve          = nil;
+        self.cur_location_reject           = nil;
+        self.time_filter                   = nil;
+        self.distance_filter               = nil;
+        self.upload_enabled                = NO;
+        self.upload_url                    = nil;
+        self.upload_connection_type        = kUploadWifiOnly;
+        self.upload_frequency              = 0;
+        self.upload_request_format         = kUploadRequestFormatJSON;
+        self.upload_locations_param        = @"locations";
+        self.upload_extra_params           = nil;
+        self.upload_extra_headers          = nil;
+        self.upload_field_timestamp        = YES;
+        self.upload_field_latitude         = YES;
+        self.upload_field_longitude        = YES;
+        self.upload_field_accuracy         = NO;
+        self.upload_field_heading          = NO;
+        self.upload_field_speed            = NO;
+        self.upload_compression            = kUploadCompressionNone;
+        self.upload_compression_min_size   = @1024;
+        self.upload_compression_dictionary = NO;
+        self.in_background                 = NO;
+        self.background_location_manager   = nil;
+        self.last_update                   = nil;
+        self.last_upload                   = nil;
 
         NSNotificationCenter* listener = [NSNotificationCenter defaultCenter];
 
@@ -415,6 +489,8 @@ RCT_EXPORT_MODULE();
         return;
     }
 
+    request = [self compress_request:request];
+
     void (^completion_handler)(NSData*, NSURLResponse*, NSError*);
     completion_handler = ^(NSData* data,
                            NSURLResponse* response,
@@ -630,6 +706,156 @@ RCT_EXPORT_MODULE();
 
 // ==========================================================================
 
+- (NSURLRequest*) compress_request:(NSURLRequest*)request {
+
+    NSData* body = [request HTTPBody];
+
+    if ((self.upload_compression == kUploadCompressionNone) ||
+        ([body length] < [self.upload_compression_min_size unsignedIntValue])) {
+        return request;
+    }
+
+    // Choose the compression level based on our connection to the server.
+
+    NSString* connection_type = [self connection_to_server:
+                                                [self get_upload_server]];
+
+    int level;
+    if ([connection_type isEqualToString:@"CELLULAR"]) {
+        level = Z_BEST_COMPRESSION;
+    } else if ([connection_type isEqualToString:@"WIFI"]) {
+        level = Z_BEST_SPEED;
+    } else {
+        level = Z_DEFAULT_COMPRESSION;
+    }
+
+    // Compress the body.  A body compressed using our preset dictionary gets
+    // its own content encoding, as a standard server can't inflate it.
+
+    NSData*   compressed = nil;
+    NSString* encoding   = nil;
+
+    if (self.upload_compression == kUploadCompressionGzip) {
+        compressed = [self compress_data:body
+                             window_bits:15 + 16
+                                   level:level
+                              dictionary:nil];
+        encoding   = @"gzip";
+    } else if (self.upload_compression == kUploadCompressionDeflate) {
+        if (self.upload_compression_dictionary &&
+            (self.upload_request_format == kUploadRequestFormatJSON)) {
+            compressed = [self compress_data:body
+                                 window_bits:15
+                                       level:level
+                                  dictionary:[self compression_dictionary]];
+            encoding   = @"x-deflate-dictionary";
+        } else {
+            compressed = [self compress_data:body
+                                 window_bits:15
+                                       level:level
+                                  dictionary:nil];
+            encoding   = @"deflate";
+        }
+    }
+
+#if DEBUG_MODE
+    NSLog(@"Upload request body: %lu bytes raw, %lu bytes compressed (%@)",
+          (unsigned long)[body length],
+          (unsigned long)[compressed length],
+          encoding);
+#endif
+
+    // Never send a "compressed" body which is larger than the original.
+
+    if ((compressed == nil) || ([compressed length] >= [body length])) {
+        return request;
+    }
+
+    NSMutableURLRequest* compressed_request = [request mutableCopy];
+    [compressed_request setValue:encoding
+              forHTTPHeaderField:@"Content-Encoding"];
+    [compressed_request setHTTPBody:compressed];
+    return compressed_request;
+}
+
+// ==========================================================================
+
+- (NSData*) compress_data:(NSData*)data
+              window_bits:(int)window_bits
+                    level:(int)level
+               dictionary:(NSData*)dictionary {
+
+    z_stream stream;
+    memset(&stream, 0, sizeof(stream));
+
+    if (deflateInit2(&stream, level, Z_DEFLATED, window_bits, 8,
+                     Z_DEFAULT_STRATEGY) != Z_OK) {
+        return nil;
+    }
+
+    if (dictionary != nil) {
+        if (deflateSetDictionary(&stream,
+                                 (const Bytef*)[dictionary bytes],
+                                 (uInt)[dictionary length]) != Z_OK) {
+            deflateEnd(&stream);
+            return nil;
+        }
+    }
+
+    NSMutableData* compressed = [NSMutableData dataWithLength:
+                                    deflateBound(&stream, [data length])];
+
+    stream.next_in   = (Bytef*)[data bytes];
+    stream.avail_in  = (uInt)[data length];
+    stream.next_out  = (Bytef*)[compressed mutableBytes];
+    stream.avail_out = (uInt)[compressed length];
+
+    int   result    = deflate(&stream, Z_FINISH);
+    uLong total_out = stream.total_out;
+    deflateEnd(&stream);
+
+    if (result != Z_STREAM_END) {
+        return nil;
+    }
+
+    [compressed setLength:total_out];
+    return compressed;
+}
+
+// ==========================================================================
+
+- (NSData*) compression_dictionary {
+
+    NSMutableArray* fields = [NSMutableArray array];
+
+    if (self.upload_field_timestamp) {
+        [fields addObject:@"\"timestamp\":"];
+    }
+    if (self.upload_field_latitude) {
+        [fields addObject:@"\"latitude\":"];
+    }
+    if (self.upload_field_longitude) {
+        [fields addObject:@"\"longitude\":"];
+    }
+    if (self.upload_field_accuracy) {
+        [fields addObject:@"\"accuracy\":"];
+    }
+    if (self.upload_field_heading) {
+        [fields addObject:@"\"heading\":"];
+    }
+    if (self.upload_field_speed) {
+        [fields addObject:@"\"speed\":"];
+    }
+
+    NSString* dictionary = [NSString stringWithFormat:@"\"%@\":[{%@}",
+                                    self.upload_locations_param,
+                                    [fields componentsJoinedByString:@","]];
+
+    return [dictionary dataUsingEncoding:NSUTF8StringEncoding];
+}
+
+// ==========================================================================
+
 - (void) on_enter_background {
 
     self.in_background = YES;
@@ -805,6 +1031,29 @@ RCT_EXPORT_METHOD(configure:(NSDictionary*)options) {
         }
     }
 
+    if (options[@"upload_compression"] != nil) {
+        NSString* compression = options[@"upload_compression"];
+        if ([compression isEqualToString:@"NONE"]) {
+            self.upload_compression = kUploadCompressionNone;
+        } else if ([compression isEqualToString:@"GZIP"]) {
+            self.upload_compression = kUploadCompressionGzip;
+        } else if ([compression isEqualToString:@"DEFLATE"]) {
+            self.upload_compression = kUploadCompressionDeflate;
+        } else {
+            NSLog(@"Invalid compression: %@", compression);
+        }
+    }
+
+    if (options[@"upload_compression_min_size"] != nil) {
+        self.upload_compression_min_size =
+                                    options[@"upload_compression_min_size"];
+    }
+
+    if (options[@"upload_compression_dictionary"] != nil) {
+        self.upload_compression_dictionary =
+                        [options[@"upload_compression_dictionary"] boolValue];
+    }
+
     if (options[@"keep_locations_for"] != nil) {
         int num_days = [options[@"keep_locations_for"] intValue];
         LocationStore* locationStore = [LocationStore sharedStore];
@@ -54,6 +54,14 @@ class LocationCapture {
         return NativeModules.LocationCapture.getLatestAnchor()
     }
 
+    static get_visits(from, to) {
+        return NativeModules.LocationCapture.getVisits(from, to)
+    }
+
+    static get_database_stats() {
+        return NativeModules.LocationCapture.getDatabaseStats()
+    }
+
     // Used internally:
 
     static _notifier = null